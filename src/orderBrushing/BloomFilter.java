@@ -0,0 +1,88 @@
+package orderBrushing;
+
+import java.util.Arrays;
+
+/**
+ * A Bloom filter of primitive {@code long} values backed by a bit array. It
+ * never reports a false negative, and reports false positives with a
+ * probability that can be estimated from the fraction of bits set.
+ */
+final class BloomFilter {
+
+    private final long[] bits;
+    private final long numberOfBits;
+    private final int numberOfHashes;
+    private long bitsSet = 0;
+
+    /**
+     * Construct a Bloom filter sized for {@code expectedInsertions} values with
+     * a false positive probability of {@code falsePositiveRate}.
+     */
+    BloomFilter(int expectedInsertions, double falsePositiveRate) {
+        long numberOfWords = numberOfWords(expectedInsertions, falsePositiveRate);
+        if (numberOfWords > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Bloom filter too large");
+        }
+        bits = new long[(int) numberOfWords];
+        numberOfBits = bits.length * 64L;
+        numberOfHashes = Math.max(1, (int) Math.round((double) numberOfBits / Math.max(1, expectedInsertions) * Math.log(2)));
+    }
+
+    /**
+     * Compute the number of 64-bit words needed for {@code expectedInsertions}
+     * values with a false positive probability of {@code falsePositiveRate}.
+     */
+    static long numberOfWords(int expectedInsertions, double falsePositiveRate) {
+        double m = Math.ceil(-Math.max(1, expectedInsertions) * Math.log(falsePositiveRate)
+                / (Math.log(2) * Math.log(2)));
+        return Math.max(1, (long) Math.ceil(m / 64));
+    }
+
+    final void add(long value) {
+        long h1 = mix(value);
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i < numberOfHashes; i++) {
+            long index = Math.floorMod(h1 + i * h2, numberOfBits);
+            long mask = 1L << index;
+            int word = (int) (index >>> 6);
+            if ((bits[word] & mask) == 0) {
+                bits[word] |= mask;
+                bitsSet++;
+            }
+        }
+    }
+
+    final boolean mightContain(long value) {
+        long h1 = mix(value);
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i < numberOfHashes; i++) {
+            long index = Math.floorMod(h1 + i * h2, numberOfBits);
+            if ((bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Estimate the current false positive probability, which is the probability
+     * that all bits checked for an absent value are set.
+     */
+    final double falsePositiveRate() {
+        return Math.pow((double) bitsSet / numberOfBits, numberOfHashes);
+    }
+
+    final void clear() {
+        Arrays.fill(bits, 0);
+        bitsSet = 0;
+    }
+
+    /**
+     * The finalizer of SplitMix64, which spreads the bits of a value.
+     */
+    static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
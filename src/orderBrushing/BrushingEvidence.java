@@ -0,0 +1,38 @@
+package orderBrushing;
+
+import java.util.Date;
+
+/**
+ * This class represents the evidence of a closed order-brushing period of a
+ * shop. It includes the following information:
+ * <ul>
+ * <li>shopId: {@code long}</li>
+ * <li>startTime: {@code java.util.Date}, time of the first suspicious
+ * order</li>
+ * <li>endTime: {@code java.util.Date}, time of the last suspicious order</li>
+ * <li>orderIds: {@code long[]}, suspicious orders in ascending order</li>
+ * <li>userIds: {@code long[]}, the user of each order in {@code orderIds}</li>
+ * </ul>
+ */
+public final class BrushingEvidence {
+
+    public final long shopId;
+    public final Date startTime;
+    public final Date endTime;
+    public final long[] orderIds;
+    public final long[] userIds;
+
+    BrushingEvidence(long shopId, Date startTime, Date endTime, long[] orderIds, long[] userIds) {
+        this.shopId = shopId;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.orderIds = orderIds;
+        this.userIds = userIds;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("shop: %d, start: %s, end: %s, orders: %d", shopId, startTime, endTime,
+                orderIds.length);
+    }
+}
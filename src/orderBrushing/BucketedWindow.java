@@ -0,0 +1,207 @@
+package orderBrushing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * BucketedWindow replaces the recentOrders of a hot shop by a ring of
+ * aggregates of time buckets. Each bucket covers {@code window / numberOfBuckets}
+ * milliseconds, and keeps the number of orders and the number of orders of each
+ * user in that time. The totals of the window are maintained by adding new
+ * orders and subtracting expired buckets, so the work per order does not grow
+ * with the number of orders in the window.
+ * <p>
+ * The window slides by whole buckets, so the concentration is computed over a
+ * time length between {@code window - bucketLength} and {@code window}. The
+ * larger {@code numberOfBuckets}, the more precise the result.
+ * </p>
+ * <p>
+ * If orders are kept, each bucket also keeps its orders, so that the orders of
+ * an order-brushing period can be recorded as evidence. This costs memory in
+ * proportion to the number of orders in the window, like recentOrders.
+ * </p>
+ */
+final class BucketedWindow {
+
+    // the largest number of buckets per window
+    static final int MAX_BUCKETS = 1 << 16;
+
+    private final long bucketLength;
+    private final int numberOfBuckets;
+
+    // bucket of epoch e (eventTime / bucketLength) is stored at index e % numberOfBuckets
+    private final long[] epochs;
+    private final int[] orderCounts;
+    // the map of a bucket is created when the bucket first receives an order
+    private final ArrayList<HashMap<Long, Integer>> userCounts;
+    // orders of each bucket, created like userCounts, null if orders are not kept
+    private final ArrayList<ArrayList<Order>> orders;
+
+    // the oldest epoch that may still be in the window, Long.MIN_VALUE if no order yet
+    private long oldestEpoch = Long.MIN_VALUE;
+
+    // totals of the window
+    private int windowOrders = 0;
+    private final HashMap<Long, Integer> windowUsers = new HashMap<>();
+
+    /**
+     * Construct a ring of buckets, each covering {@code window / numberOfBuckets}
+     * milliseconds.
+     *
+     * @param keepOrders whether each bucket keeps its orders.
+     * @throws IllegalArgumentException if numberOfBuckets < 1, numberOfBuckets >
+     *                                  MAX_BUCKETS, or numberOfBuckets > window.
+     */
+    BucketedWindow(long window, int numberOfBuckets, boolean keepOrders) {
+        if (numberOfBuckets < 1 || numberOfBuckets > MAX_BUCKETS || numberOfBuckets > window) {
+            throw new IllegalArgumentException("illegal number of buckets");
+        }
+        this.numberOfBuckets = numberOfBuckets;
+        this.bucketLength = (window + numberOfBuckets - 1) / numberOfBuckets;
+        this.epochs = new long[numberOfBuckets];
+        this.orderCounts = new int[numberOfBuckets];
+        this.userCounts = new ArrayList<>(numberOfBuckets);
+        for (int i = 0; i < numberOfBuckets; i++) {
+            userCounts.add(null);
+        }
+        this.orders = keepOrders ? new ArrayList<>(numberOfBuckets) : null;
+        for (int i = 0; keepOrders && i < numberOfBuckets; i++) {
+            orders.add(null);
+        }
+    }
+
+    final long epochOf(Order order) {
+        return Math.floorDiv(order.eventTime.getTime(), bucketLength);
+    }
+
+    /**
+     * Expire the oldest bucket that falls out of the window ending at
+     * {@code epoch}. Empty buckets are skipped. Should be invoked repeatedly until
+     * it returns false, so that the concentration can be checked after each
+     * expiration.
+     *
+     * @return true if a non-empty bucket has been expired.
+     */
+    final boolean expireNext(long epoch) {
+        if (oldestEpoch == Long.MIN_VALUE) {
+            return false;
+        }
+        final long lowerBound = epoch - numberOfBuckets + 1;
+        while (oldestEpoch < lowerBound) {
+
+            // fast forward if the window is empty
+            if (windowOrders == 0) {
+                oldestEpoch = lowerBound;
+                return false;
+            }
+            int index = (int) Math.floorMod(oldestEpoch, (long) numberOfBuckets);
+            long expiredEpoch = oldestEpoch;
+            oldestEpoch++;
+            if (epochs[index] == expiredEpoch && orderCounts[index] > 0) {
+                windowOrders -= orderCounts[index];
+                for (Map.Entry<Long, Integer> entry : userCounts.get(index).entrySet()) {
+                    int count = windowUsers.get(entry.getKey()) - entry.getValue();
+                    if (count == 0) {
+                        windowUsers.remove(entry.getKey());
+                    } else {
+                        windowUsers.put(entry.getKey(), count);
+                    }
+                }
+                orderCounts[index] = 0;
+                userCounts.get(index).clear();
+                if (orders != null) {
+                    orders.get(index).clear();
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add an order to the bucket of its epoch. Buckets out of the window must have
+     * been expired by {@code expireNext()}.
+     */
+    final void add(Order order) {
+        long epoch = epochOf(order);
+        if (oldestEpoch == Long.MIN_VALUE) {
+            oldestEpoch = epoch - numberOfBuckets + 1;
+        }
+
+        // orders are in time order, an order older than the window is put in the
+        // oldest bucket
+        epoch = Math.max(epoch, oldestEpoch);
+        int index = (int) Math.floorMod(epoch, (long) numberOfBuckets);
+        assert orderCounts[index] == 0 || epochs[index] == epoch;
+        epochs[index] = epoch;
+        orderCounts[index]++;
+        if (userCounts.get(index) == null) {
+            userCounts.set(index, new HashMap<>());
+        }
+        userCounts.get(index).merge(order.userId, 1, Integer::sum);
+        if (orders != null) {
+            if (orders.get(index) == null) {
+                orders.set(index, new ArrayList<>());
+            }
+            orders.get(index).add(order);
+        }
+        windowOrders++;
+        windowUsers.merge(order.userId, 1, Integer::sum);
+    }
+
+    /**
+     * Calculate the concentration of the window.
+     */
+    final int concentration() {
+        if (windowUsers.isEmpty()) {
+            return 0;
+        }
+        return windowOrders / windowUsers.size();
+    }
+
+    /**
+     * Remove all orders from the buckets. Used when an order-brushing period ends,
+     * as its orders have been poured and must not be counted again.
+     */
+    final void clear() {
+        for (int i = 0; i < numberOfBuckets; i++) {
+            if (orderCounts[i] > 0) {
+                orderCounts[i] = 0;
+                userCounts.get(i).clear();
+                if (orders != null) {
+                    orders.get(i).clear();
+                }
+            }
+        }
+        oldestEpoch = Long.MIN_VALUE;
+        windowOrders = 0;
+        windowUsers.clear();
+    }
+
+    /**
+     * Get the number of orders of each user in the window. The returned map must
+     * be treated as read only.
+     */
+    final HashMap<Long, Integer> windowUsers() {
+        return windowUsers;
+    }
+
+    /**
+     * Get a copy of the orders in the window, not in time order.
+     *
+     * @return an {@code ArrayList} of orders, null if orders are not kept.
+     */
+    final ArrayList<Order> ordersInWindow() {
+        if (orders == null) {
+            return null;
+        }
+        ArrayList<Order> result = new ArrayList<>(windowOrders);
+        for (int i = 0; i < numberOfBuckets; i++) {
+            if (orderCounts[i] > 0) {
+                result.addAll(orders.get(i));
+            }
+        }
+        return result;
+    }
+}
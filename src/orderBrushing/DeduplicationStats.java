@@ -0,0 +1,42 @@
+package orderBrushing;
+
+/**
+ * Statistics of orderId deduplication. It includes the following information:
+ * <ul>
+ * <li>exact: {@code boolean}, whether deduplication is exact or
+ * probabilistic</li>
+ * <li>numberOfChecks: {@code long}, number of orders checked</li>
+ * <li>numberOfDuplicates: {@code long}, number of orders dropped as
+ * duplicates</li>
+ * <li>falsePositiveRate: {@code double}, estimated current probability that a
+ * new order is dropped as a duplicate</li>
+ * <li>expectedFalsePositives: {@code double}, estimated number of new orders
+ * that have been dropped as duplicates, based on the orders that have
+ * passed</li>
+ * </ul>
+ * In exact mode, {@code falsePositiveRate} and {@code expectedFalsePositives}
+ * are always 0.
+ */
+public final class DeduplicationStats {
+
+    public final boolean exact;
+    public final long numberOfChecks;
+    public final long numberOfDuplicates;
+    public final double falsePositiveRate;
+    public final double expectedFalsePositives;
+
+    DeduplicationStats(boolean exact, long numberOfChecks, long numberOfDuplicates, double falsePositiveRate,
+            double expectedFalsePositives) {
+        this.exact = exact;
+        this.numberOfChecks = numberOfChecks;
+        this.numberOfDuplicates = numberOfDuplicates;
+        this.falsePositiveRate = falsePositiveRate;
+        this.expectedFalsePositives = expectedFalsePositives;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("exact: %b, checks: %d, duplicates: %d, false positive rate: %g, expected false positives: %g",
+                exact, numberOfChecks, numberOfDuplicates, falsePositiveRate, expectedFalsePositives);
+    }
+}
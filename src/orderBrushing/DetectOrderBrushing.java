@@ -1,11 +1,15 @@
 package orderBrushing;
 
 import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.TreeSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * OrderBrushOrder is a lazy execution package for detecting order brushing.
@@ -25,6 +29,10 @@ import java.util.HashMap;
  * mapping from ShopId to an array of suspicious UserId. If the shop has no
  * suspicious transactions, the corresponding array is empty.</li>
  * </ul>
+ * To look up a single user across all shops, use
+ * {@code HashMap<Long, Integer> getUserSuspiciousShops(long userId)}, which
+ * does not scan or copy the whole shop list. To rank the worst offenders, use
+ * {@code getTopSuspiciousShops(int k)} and {@code getTopSuspiciousUsers(int k)}.
  * </p>
  */
 public final class DetectOrderBrushing {
@@ -33,6 +41,9 @@ public final class DetectOrderBrushing {
     private final ShopList shopList;
     private DateFormat dateFormat;
 
+    // optional filter of replayed orders, null if deduplication is disabled
+    private OrderIdFilter orderIdFilter = null;
+
     /**
      * Construct a new order brushing detector with default parameters:
      * {@code window} = 1 hour, {@code concentrationThreshold} = 3, and
@@ -76,7 +87,8 @@ public final class DetectOrderBrushing {
 
     /**
      * Update the system. Require new orders to come <em>in time order</em>. Should
-     * be invoked each time a new order occurs.
+     * be invoked each time a new order occurs. If deduplication is enabled, orders
+     * with an orderId seen within the retention are ignored.
      *
      * @param orderLine a line of string in the format of:
      *                  {@code orderId,shopId,userId,yyyy-MM-dd HH:mm:ss}
@@ -85,7 +97,71 @@ public final class DetectOrderBrushing {
      * @throws NumberFormatException    if orderId, shopId, or userId are illegal
      */
     public final void processNewOrder(String orderLine) throws ParseException {
-        shopList.update(parseLine(orderLine, dateFormat));
+        Order order = parseLine(orderLine, dateFormat);
+        if (orderIdFilter != null && orderIdFilter.isDuplicate(order)) {
+            return;
+        }
+        shopList.update(order);
+    }
+
+    /**
+     * Enable exact deduplication of orders by orderId. This is useful when the
+     * same order may be delivered more than once. An order is ignored if an order
+     * with the same orderId has been processed within {@code retention}
+     * milliseconds (event time). The memory used is proportional to the number of
+     * orders within {@code retention}. Statistics are reset.
+     *
+     * @param retention the time length for which an orderId is remembered, in
+     *                  milliseconds. Recommend to be at least the window.
+     * @throws IllegalArgumentException if retention < 1
+     */
+    public void enableDeduplication(long retention) {
+        if (retention < 1) {
+            throw new IllegalArgumentException("retention must be positive");
+        }
+        orderIdFilter = new OrderIdFilter(retention);
+    }
+
+    /**
+     * Enable probabilistic deduplication of orders by orderId, which uses Bloom
+     * filters and takes much less memory than exact deduplication. A new order may
+     * be wrongly ignored as a duplicate with a probability around
+     * {@code falsePositiveRate}, as long as the number of orders within
+     * {@code retention} does not exceed {@code expectedOrders}. Use
+     * {@code getDeduplicationStats()} to monitor the estimated false positives.
+     * Statistics are reset.
+     *
+     * @param retention         the time length for which an orderId is
+     *                          remembered, in milliseconds.
+     * @param expectedOrders    the expected number of orders within retention.
+     * @param falsePositiveRate the target probability of wrongly ignoring a new
+     *                          order.
+     * @throws IllegalArgumentException if retention < 1, expectedOrders < 1,
+     *                                  falsePositiveRate is not in (0, 1), or the
+     *                                  Bloom filters would take more than 1 GiB
+     *                                  in total.
+     */
+    public void enableDeduplication(long retention, int expectedOrders, double falsePositiveRate) {
+        if (retention < 1 || expectedOrders < 1 || !(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("illegal parameter");
+        }
+        orderIdFilter = new OrderIdFilter(retention, expectedOrders, falsePositiveRate);
+    }
+
+    /**
+     * Disable deduplication of orders.
+     */
+    public void disableDeduplication() {
+        orderIdFilter = null;
+    }
+
+    /**
+     * Get the statistics of deduplication since it is enabled.
+     *
+     * @return statistics of deduplication, or null if deduplication is disabled.
+     */
+    public DeduplicationStats getDeduplicationStats() {
+        return orderIdFilter == null ? null : orderIdFilter.getStats();
     }
 
     /**
@@ -97,33 +173,7 @@ public final class DetectOrderBrushing {
      * @return a {@code Hashmap} from shopId to an array of suspicious userId
      */
     public final HashMap<Long, Long[]> getSuspiciousShopUser() {
-
-        final HashMap<Long, Long[]> suspiciousShopUser = new HashMap<>();
-
-        // a temporary container used repeatedly.
-        final TreeSet<Long> tempSet = new TreeSet<>();
-
-        // Must use a deep copy of shopList because this flushes the recentOrders
-        // earlier than possible should be.
-        for (Shop shop : shopList.getShopInfo()) {
-
-            // find the maximum order brushing number among users
-            int max = 0;
-            for (Integer count : shop.suspiciousUsers.values()) {
-                if (count > max) {
-                    max = count;
-                }
-            }
-
-            // get usersId and put in ascending order
-            tempSet.clear();
-            for (Long userId : shop.suspiciousUsers.keySet()) {
-                if (shop.suspiciousUsers.get(userId) == max)
-                    tempSet.add(userId);
-            }
-            suspiciousShopUser.put(shop.shopId, tempSet.toArray(new Long[0]));
-        }
-        return suspiciousShopUser;
+        return assembleSuspiciousShopUser(0);
     }
 
     /**
@@ -140,25 +190,228 @@ public final class DetectOrderBrushing {
      * @return a {@code Hashmap} from shopId to an array of suspicious userId
      */
     public final HashMap<Long, Long[]> getAllSuspiciousShopUser(int threshold) {
+        return assembleSuspiciousShopUser(Math.max(1, threshold));
+    }
+
+    /**
+     * Assemble the result of {@code getSuspiciousShopUser()} (threshold = 0) or
+     * {@code getAllSuspiciousShopUser()} (threshold >= 1). The shops are split
+     * among the threads of the common fork-join pool. Shops are read in place
+     * instead of being deep copied, and on-going order-brushing periods are
+     * counted without pouring, so future {@code processNewOrder()} is not
+     * disrupted.
+     */
+    private HashMap<Long, Long[]> assembleSuspiciousShopUser(int threshold) {
+        final Shop[] shops = shopList.getShops();
+        final Long[][] results = new Long[shops.length][];
+        ForkJoinPool.commonPool().invoke(new SuspiciousUserTask(shopList, shops, results, threshold, 0, shops.length));
 
-        final HashMap<Long, Long[]> suspiciousShopUser = new HashMap<>();
+        final HashMap<Long, Long[]> suspiciousShopUser = new HashMap<>(shops.length * 4 / 3 + 1);
+        for (int i = 0; i < shops.length; i++) {
+            suspiciousShopUser.put(shops[i].shopId, results[i]);
+        }
+        return suspiciousShopUser;
+    }
 
-        // a temporary container used repeatedly.
-        final TreeSet<Long> tempSet = new TreeSet<>();
+    /**
+     * Retrieve the shops for which user {@code userId} has conducted suspicious
+     * transactions. The Keys are shopId, and the Values are the number of
+     * suspicious transactions of the user in that shop. The counts are consistent
+     * with {@code getAllSuspiciousShopUser()}, but the lookup uses an index
+     * maintained while processing orders instead of scanning every shop.
+     *
+     * @param userId the user to look up
+     * @return a {@code HashMap} from shopId to number of suspicious transactions,
+     *         empty if the user is not suspicious in any shop.
+     */
+    public final HashMap<Long, Integer> getUserSuspiciousShops(long userId) {
+        return shopList.lookupUser(userId);
+    }
 
-        // Must use a deep copy of shopList because this flushes the recentOrders
-        // earlier than possible should be.
-        for (Shop shop : shopList.getShopInfo()) {
+    /**
+     * Batch version of {@code getUserSuspiciousShops()}. The Keys are userId, and
+     * the Values are mappings from shopId to the number of suspicious transactions
+     * of the user in that shop. Every userId in {@code userIds} is a key of the
+     * result; the mapping is empty if the user is not suspicious in any shop.
+     *
+     * @param userIds the users to look up
+     * @return a {@code HashMap} from userId to a {@code HashMap} from shopId to
+     *         number of suspicious transactions.
+     */
+    public final HashMap<Long, HashMap<Long, Integer>> getUsersSuspiciousShops(Collection<Long> userIds) {
+        return shopList.lookupUsers(new HashSet<>(userIds));
+    }
 
-            // get usersId and put in ascending order
-            tempSet.clear();
-            for (Long userId : shop.suspiciousUsers.keySet()) {
-                if (shop.suspiciousUsers.get(userId) >= threshold)
-                    tempSet.add(userId);
-            }
-            suspiciousShopUser.put(shop.shopId, tempSet.toArray(new Long[0]));
+    /**
+     * Retrieve the {@code k} shops with the highest number of suspicious
+     * transactions. The ranking is maintained while processing orders, so the
+     * query does not scan every shop. Ties are broken by shopId in ascending
+     * order. Shops without suspicious transactions are not ranked.
+     *
+     * @param k the number of shops to retrieve
+     * @return a {@code LinkedHashMap} from shopId to number of suspicious
+     *         transactions, in descending order of the number.
+     * @throws IllegalArgumentException if k < 1
+     */
+    public final LinkedHashMap<Long, Integer> getTopSuspiciousShops(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive");
         }
-        return suspiciousShopUser;
+        return shopList.topShops(k);
+    }
+
+    /**
+     * Retrieve the {@code k} users with the highest number of suspicious
+     * transactions summed across all shops. The ranking is maintained while
+     * processing orders, so the query does not scan every shop. Ties are broken
+     * by userId in ascending order.
+     *
+     * @param k the number of users to retrieve
+     * @return a {@code LinkedHashMap} from userId to number of suspicious
+     *         transactions, in descending order of the number.
+     * @throws IllegalArgumentException if k < 1
+     */
+    public final LinkedHashMap<Long, Integer> getTopSuspiciousUsers(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        return shopList.topUsers(k);
+    }
+
+    /**
+     * Enable recording of brushing evidence. From now on, each time an
+     * order-brushing period of a shop is closed, its start and end time, orderIds
+     * and userIds are recorded in compact off-heap storage. Use
+     * {@code getEvidenceBytesPerOrder()} to monitor the cost per order. Does
+     * nothing if recording is already enabled.
+     * <p>
+     * Shops that switch to bucketed mode while recording is enabled keep the
+     * orders of their window to record evidence. Shops that have switched to
+     * bucketed mode before recording is enabled record no evidence.
+     * </p>
+     */
+    public void enableEvidenceStore() {
+        if (shopList.getEvidenceStore() == null) {
+            shopList.setEvidenceStore(new EvidenceStore());
+        }
+    }
+
+    /**
+     * Disable recording of brushing evidence and release recorded evidence.
+     */
+    public void disableEvidenceStore() {
+        shopList.setEvidenceStore(null);
+    }
+
+    /**
+     * Retrieve the recorded evidence of closed order-brushing periods of a shop.
+     * An order-brushing period that is still on-going is not included, nor is
+     * a period of a shop that switched to bucketed mode before recording was
+     * enabled. The evidence of a bucketed shop covers the approximate periods of
+     * bucketed mode.
+     *
+     * @param shopId the shop to audit
+     * @return a list of evidence in time order, empty if there is no evidence or
+     *         recording is disabled.
+     */
+    public final ArrayList<BrushingEvidence> getBrushingEvidence(long shopId) {
+        EvidenceStore evidenceStore = shopList.getEvidenceStore();
+        return evidenceStore == null ? new ArrayList<>() : evidenceStore.get(shopId);
+    }
+
+    /**
+     * Get the number of bytes used by recorded evidence, including the addresses
+     * of records in the on-heap index. Off-heap memory is allocated in segments
+     * of 1 MiB, see {@code getEvidenceAllocatedBytes()} for the memory actually
+     * committed.
+     *
+     * @return number of bytes, 0 if recording is disabled.
+     */
+    public long getEvidenceStoreBytes() {
+        EvidenceStore evidenceStore = shopList.getEvidenceStore();
+        return evidenceStore == null ? 0 : evidenceStore.bytesUsed();
+    }
+
+    /**
+     * Get the number of bytes allocated for recorded evidence, which is the
+     * capacity of all off-heap segments, including space not used yet, plus the
+     * addresses of records in the on-heap index.
+     *
+     * @return number of bytes, 0 if recording is disabled.
+     */
+    public long getEvidenceAllocatedBytes() {
+        EvidenceStore evidenceStore = shopList.getEvidenceStore();
+        return evidenceStore == null ? 0 : evidenceStore.bytesAllocated();
+    }
+
+    /**
+     * Get the average number of bytes used by recorded evidence per order, i.e.
+     * {@code getEvidenceStoreBytes()} divided by the number of recorded orders. It
+     * does not count the unused space of allocated segments, which becomes
+     * negligible once many orders are recorded. It depends on the data: orders of
+     * a period with close orderIds and userIds are encoded in fewer bytes.
+     *
+     * @return number of bytes per order, 0 if no order is recorded or recording is
+     *         disabled.
+     */
+    public double getEvidenceBytesPerOrder() {
+        EvidenceStore evidenceStore = shopList.getEvidenceStore();
+        return evidenceStore == null ? 0 : evidenceStore.bytesPerOrder();
+    }
+
+    /**
+     * Enable bucketed mode for hot shops. A shop with at least
+     * {@code hotShopThreshold} orders in the window switches from the exact scan
+     * of individual orders to a ring of {@code bucketsPerWindow} time buckets that
+     * keep the number of orders of each user. The work per order of a bucketed
+     * shop no longer grows with the number of orders in the window, but the window
+     * slides by whole buckets of {@code window / bucketsPerWindow} milliseconds
+     * instead of by {@code increment}, so the results are approximate. The more
+     * buckets, the more precise.
+     * <p>
+     * If {@code trackDivergence} is true, an exact copy of each bucketed shop is
+     * kept alongside to measure the divergence, see
+     * {@code getBucketedDivergence()}. This costs as much as the exact scan and is
+     * meant for tuning the parameters.
+     * </p>
+     * Shops that have switched to bucketed mode stay in bucketed mode. If evidence
+     * is recorded, they keep their orders for it, see
+     * {@code enableEvidenceStore()}.
+     *
+     * @param hotShopThreshold the number of orders in the window for a shop to
+     *                         switch to bucketed mode
+     * @param bucketsPerWindow the number of buckets per window, at most the
+     *                         window in milliseconds and at most 65536
+     * @param trackDivergence  whether to keep an exact copy of bucketed shops
+     * @throws IllegalArgumentException if hotShopThreshold < 1,
+     *                                  bucketsPerWindow < 1, bucketsPerWindow >
+     *                                  window, or bucketsPerWindow > 65536
+     */
+    public void enableBucketedMode(int hotShopThreshold, int bucketsPerWindow, boolean trackDivergence) {
+        if (hotShopThreshold < 1 || bucketsPerWindow < 1 || bucketsPerWindow > getWindow()
+                || bucketsPerWindow > BucketedWindow.MAX_BUCKETS) {
+            throw new IllegalArgumentException("illegal parameter");
+        }
+        shopList.setBucketedMode(hotShopThreshold, bucketsPerWindow, trackDivergence);
+    }
+
+    /**
+     * Stop switching hot shops to bucketed mode. Shops already in bucketed mode
+     * are not affected.
+     */
+    public void disableBucketedMode() {
+        shopList.setBucketedMode(0, 1, false);
+    }
+
+    /**
+     * Report how far the results of bucketed shops diverge from the exact scan.
+     * Only shops switched to bucketed mode while {@code trackDivergence} is
+     * enabled are compared.
+     *
+     * @return a report of the divergence.
+     */
+    public DivergenceReport getBucketedDivergence() {
+        return shopList.divergence();
     }
 
     /**
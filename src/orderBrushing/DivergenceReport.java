@@ -0,0 +1,55 @@
+package orderBrushing;
+
+/**
+ * Report of the divergence between bucketed mode and the exact scan. It
+ * includes the following information:
+ * <ul>
+ * <li>numberOfBucketedShops: {@code int}, number of shops in bucketed
+ * mode</li>
+ * <li>numberOfComparedShops: {@code int}, number of bucketed shops with an
+ * exact shadow to compare with</li>
+ * <li>numberOfDivergentShops: {@code int}, number of compared shops whose most
+ * suspicious users differ</li>
+ * <li>exactOrders: {@code long}, number of suspicious transactions of compared
+ * shops found by the exact scan</li>
+ * <li>bucketedOrders: {@code long}, number of suspicious transactions of
+ * compared shops found in bucketed mode</li>
+ * <li>absoluteDifference: {@code long}, sum over shops and users of the
+ * absolute difference of the number of suspicious transactions</li>
+ * </ul>
+ */
+public final class DivergenceReport {
+
+    public final int numberOfBucketedShops;
+    public final int numberOfComparedShops;
+    public final int numberOfDivergentShops;
+    public final long exactOrders;
+    public final long bucketedOrders;
+    public final long absoluteDifference;
+
+    DivergenceReport(int numberOfBucketedShops, int numberOfComparedShops, int numberOfDivergentShops,
+            long exactOrders, long bucketedOrders, long absoluteDifference) {
+        this.numberOfBucketedShops = numberOfBucketedShops;
+        this.numberOfComparedShops = numberOfComparedShops;
+        this.numberOfDivergentShops = numberOfDivergentShops;
+        this.exactOrders = exactOrders;
+        this.bucketedOrders = bucketedOrders;
+        this.absoluteDifference = absoluteDifference;
+    }
+
+    /**
+     * The absolute difference relative to the number of suspicious transactions
+     * found by the exact scan, 0 if there is nothing to compare.
+     */
+    public double relativeDifference() {
+        return exactOrders == 0 ? (absoluteDifference == 0 ? 0 : 1) : (double) absoluteDifference / exactOrders;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "bucketed shops: %d, compared: %d, divergent: %d, exact orders: %d, bucketed orders: %d, difference: %d (%.2f%%)",
+                numberOfBucketedShops, numberOfComparedShops, numberOfDivergentShops, exactOrders, bucketedOrders,
+                absoluteDifference, relativeDifference() * 100);
+    }
+}
@@ -0,0 +1,211 @@
+package orderBrushing;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+
+/**
+ * EvidenceStore records the suspicious orders of each closed order-brushing
+ * period in compact off-heap segments, so that a flag can be audited without
+ * replaying the orders.
+ * <p>
+ * Each period is encoded as a record of variable-length integers:
+ * <ul>
+ * <li>number of orders, start time (zigzag), and end time minus start
+ * time;</li>
+ * <li>for each order in ascending orderId: the difference from the previous
+ * orderId, and the zigzag difference from the previous userId.</li>
+ * </ul>
+ * Records are appended to direct {@code ByteBuffer} segments, and an index from
+ * shopId to record addresses is kept on heap as primitive arrays. A record never spans two
+ * segments.
+ * </p>
+ */
+final class EvidenceStore {
+
+    private static final int SEGMENT_SIZE = 1 << 20;
+
+    // off-heap segments, records are appended to the last one
+    private final ArrayList<ByteBuffer> segments = new ArrayList<>();
+
+    // map from shopId to record addresses (segment index << 32 | offset)
+    private final HashMap<Long, Addresses> index = new HashMap<>();
+
+    // number of addresses in the index
+    private long numberOfRecords = 0;
+
+    // a temporary buffer used repeatedly for encoding
+    private byte[] scratch = new byte[256];
+    private int scratchSize = 0;
+
+    private long numberOfOrders = 0;
+
+    /**
+     * Record a closed order-brushing period of a shop.
+     *
+     * @param orders the suspicious orders of the period, in time order.
+     */
+    final void record(long shopId, Collection<Order> orders) {
+        if (orders.isEmpty()) {
+            return;
+        }
+
+        // sort orders by orderId so that the differences are small and positive
+        long[] orderIds = new long[orders.size()];
+        long[] userIds = new long[orders.size()];
+        Order[] sorted = orders.toArray(new Order[0]);
+        Arrays.sort(sorted, (a, b) -> Long.compare(a.orderId, b.orderId));
+        for (int i = 0; i < sorted.length; i++) {
+            orderIds[i] = sorted[i].orderId;
+            userIds[i] = sorted[i].userId;
+        }
+        long startTime = Long.MAX_VALUE;
+        long endTime = Long.MIN_VALUE;
+        for (Order r : orders) {
+            startTime = Math.min(startTime, r.eventTime.getTime());
+            endTime = Math.max(endTime, r.eventTime.getTime());
+        }
+
+        // encode into scratch
+        scratchSize = 0;
+        writeVarLong(orderIds.length);
+        writeVarLong(zigzag(startTime));
+        writeVarLong(endTime - startTime);
+        long previousOrderId = 0;
+        long previousUserId = 0;
+        for (int i = 0; i < orderIds.length; i++) {
+            writeVarLong(i == 0 ? zigzag(orderIds[i]) : orderIds[i] - previousOrderId);
+            writeVarLong(zigzag(userIds[i] - previousUserId));
+            previousOrderId = orderIds[i];
+            previousUserId = userIds[i];
+        }
+
+        // append to a segment with enough space
+        ByteBuffer segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.remaining() < scratchSize) {
+            segment = ByteBuffer.allocateDirect(Math.max(SEGMENT_SIZE, scratchSize));
+            segments.add(segment);
+        }
+        long address = ((long) (segments.size() - 1) << 32) | segment.position();
+        segment.put(scratch, 0, scratchSize);
+        index.computeIfAbsent(shopId, k -> new Addresses()).add(address);
+        numberOfRecords++;
+        numberOfOrders += orderIds.length;
+    }
+
+    /**
+     * Decode all recorded periods of a shop.
+     *
+     * @return a list of evidence in the order of recording, empty if none.
+     */
+    final ArrayList<BrushingEvidence> get(long shopId) {
+        ArrayList<BrushingEvidence> evidence = new ArrayList<>();
+        Addresses addresses = index.get(shopId);
+        if (addresses == null) {
+            return evidence;
+        }
+        for (int j = 0; j < addresses.size; j++) {
+            long address = addresses.values[j];
+            ByteBuffer reader = segments.get((int) (address >>> 32)).duplicate();
+            reader.position((int) address);
+            int numberOfOrders = (int) readVarLong(reader);
+            long startTime = unzigzag(readVarLong(reader));
+            long endTime = startTime + readVarLong(reader);
+            long[] orderIds = new long[numberOfOrders];
+            long[] userIds = new long[numberOfOrders];
+            long previousOrderId = 0;
+            long previousUserId = 0;
+            for (int i = 0; i < numberOfOrders; i++) {
+                long delta = readVarLong(reader);
+                orderIds[i] = i == 0 ? unzigzag(delta) : previousOrderId + delta;
+                userIds[i] = previousUserId + unzigzag(readVarLong(reader));
+                previousOrderId = orderIds[i];
+                previousUserId = userIds[i];
+            }
+            evidence.add(new BrushingEvidence(shopId, new Date(startTime), new Date(endTime), orderIds, userIds));
+        }
+        return evidence;
+    }
+
+    /**
+     * Get the number of bytes used by encoded records and their addresses in the
+     * index. The hash map entry of each shop in the index is not counted.
+     */
+    final long bytesUsed() {
+        long bytes = numberOfRecords * Long.BYTES;
+        for (ByteBuffer segment : segments) {
+            bytes += segment.position();
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the number of bytes allocated for records: the capacity of all off-heap
+     * segments, including their unused tails, plus the addresses in the index.
+     */
+    final long bytesAllocated() {
+        long bytes = numberOfRecords * Long.BYTES;
+        for (ByteBuffer segment : segments) {
+            bytes += segment.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the average number of bytes used per recorded order, based on
+     * {@code bytesUsed()}, 0 if no order is recorded.
+     */
+    final double bytesPerOrder() {
+        return numberOfOrders == 0 ? 0 : (double) bytesUsed() / numberOfOrders;
+    }
+
+    private void writeVarLong(long value) {
+        if (scratch.length - scratchSize < 10) {
+            scratch = Arrays.copyOf(scratch, scratch.length * 2);
+        }
+        while ((value & ~0x7FL) != 0) {
+            scratch[scratchSize++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        scratch[scratchSize++] = (byte) value;
+    }
+
+    private static long readVarLong(ByteBuffer reader) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = reader.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * A growable array of record addresses of a shop.
+     */
+    private static final class Addresses {
+
+        long[] values = new long[4];
+        int size = 0;
+
+        void add(long address) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = address;
+        }
+    }
+}
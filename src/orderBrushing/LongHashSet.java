@@ -0,0 +1,106 @@
+package orderBrushing;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive {@code long} values with open addressing and linear
+ * probing. It avoids the boxing and per-entry objects of
+ * {@code HashSet<Long>}, and is used for orderId deduplication.
+ */
+final class LongHashSet {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // 0 marks an empty slot, the value 0 itself is stored in hasZero
+    private long[] keys;
+    private boolean hasZero = false;
+    private int size = 0;
+
+    LongHashSet() {
+        keys = new long[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Add a value to the set.
+     *
+     * @return true if the set did not contain the value.
+     */
+    final boolean add(long value) {
+        if (value == 0) {
+            if (hasZero) {
+                return false;
+            }
+            hasZero = true;
+            size++;
+            return true;
+        }
+        int mask = keys.length - 1;
+        int i = hash(value) & mask;
+        while (keys[i] != 0) {
+            if (keys[i] == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = value;
+        size++;
+
+        // keep load factor below 0.5
+        if (size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        return true;
+    }
+
+    final boolean contains(long value) {
+        if (value == 0) {
+            return hasZero;
+        }
+        int mask = keys.length - 1;
+        int i = hash(value) & mask;
+        while (keys[i] != 0) {
+            if (keys[i] == value) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    final int size() {
+        return size;
+    }
+
+    /**
+     * Remove all values. The table shrinks back if it was sized for much more
+     * values than it held, so that memory follows the recent number of values.
+     */
+    final void clear() {
+        if (keys.length > INITIAL_CAPACITY && size * 8 < keys.length) {
+            keys = new long[Math.max(INITIAL_CAPACITY, Integer.highestOneBit(size * 4 - 1) << 1)];
+        } else {
+            Arrays.fill(keys, 0);
+        }
+        hasZero = false;
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        keys = new long[capacity];
+        int mask = capacity - 1;
+        for (long key : oldKeys) {
+            if (key != 0) {
+                int i = hash(key) & mask;
+                while (keys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+            }
+        }
+    }
+
+    private static int hash(long value) {
+        return (int) BloomFilter.mix(value);
+    }
+}
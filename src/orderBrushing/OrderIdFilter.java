@@ -0,0 +1,176 @@
+package orderBrushing;
+
+/**
+ * OrderIdFilter detects replayed orders by orderId. The orderIds are kept in a
+ * ring of time slices, each covering {@code retention / SLICES} milliseconds of
+ * event time. When the event time moves forward, expired slices are cleared and
+ * reused, so the memory is proportional to the number of orders within the
+ * retention, not to all orders ever seen.
+ * <p>
+ * In exact mode each slice is a {@code LongHashSet}. In probabilistic mode each
+ * slice is a {@code BloomFilter}, which takes much less memory but may drop a
+ * new order as a duplicate with a small probability.
+ * </p>
+ */
+final class OrderIdFilter {
+
+    // number of slices within retention
+    private static final int SLICES = 8;
+
+    // the largest total size of the Bloom filters of all slices, in number of
+    // 64-bit words (1 GiB)
+    private static final long MAX_WORDS = 1L << 27;
+
+    private final long sliceLength;
+    private final boolean exact;
+
+    // slice of epoch e is stored at index e % (SLICES + 1)
+    private final LongHashSet[] exactSlices;
+    private final BloomFilter[] bloomSlices;
+
+    // the epoch (eventTime / sliceLength) of the latest order
+    private long currentEpoch = Long.MIN_VALUE;
+
+    // statistics
+    private long numberOfChecks = 0;
+    private long numberOfDuplicates = 0;
+    private double expectedFalsePositives = 0;
+
+    /**
+     * Construct an exact filter.
+     *
+     * @param retention the time length for which an orderId is remembered.
+     */
+    OrderIdFilter(long retention) {
+        this.sliceLength = Math.max(1, retention / SLICES);
+        this.exact = true;
+        this.exactSlices = new LongHashSet[SLICES + 1];
+        this.bloomSlices = null;
+        for (int i = 0; i <= SLICES; i++) {
+            exactSlices[i] = new LongHashSet();
+        }
+    }
+
+    /**
+     * Construct a probabilistic filter.
+     *
+     * @param retention         the time length for which an orderId is
+     *                          remembered.
+     * @param expectedOrders    the expected number of orders within retention.
+     * @param falsePositiveRate the target probability that a new order is deemed
+     *                          as a duplicate.
+     * @throws IllegalArgumentException if the Bloom filters of all slices would
+     *                                  take more than 1 GiB.
+     */
+    OrderIdFilter(long retention, int expectedOrders, double falsePositiveRate) {
+        this.sliceLength = Math.max(1, retention / SLICES);
+        this.exact = false;
+        this.exactSlices = null;
+        this.bloomSlices = new BloomFilter[SLICES + 1];
+
+        // all slices are checked for each order, so split the target rate among them
+        int expectedOrdersPerSlice = Math.max(1, expectedOrders / SLICES);
+        double falsePositiveRatePerSlice = falsePositiveRate / (SLICES + 1);
+        if (BloomFilter.numberOfWords(expectedOrdersPerSlice, falsePositiveRatePerSlice) > MAX_WORDS / (SLICES + 1)) {
+            throw new IllegalArgumentException("Bloom filter too large");
+        }
+        for (int i = 0; i <= SLICES; i++) {
+            bloomSlices[i] = new BloomFilter(expectedOrdersPerSlice, falsePositiveRatePerSlice);
+        }
+    }
+
+    /**
+     * Check whether the order has been seen within retention, and remember it if
+     * it has not.
+     *
+     * @return true if the order is deemed as a duplicate.
+     */
+    final boolean isDuplicate(Order order) {
+        long epoch = Math.floorDiv(order.eventTime.getTime(), sliceLength);
+        advance(epoch);
+        numberOfChecks++;
+
+        // check all live slices
+        boolean duplicate;
+        if (exact) {
+            duplicate = false;
+            for (LongHashSet slice : exactSlices) {
+                if (slice.contains(order.orderId)) {
+                    duplicate = true;
+                    break;
+                }
+            }
+        } else {
+            duplicate = false;
+            for (BloomFilter slice : bloomSlices) {
+                if (slice.mightContain(order.orderId)) {
+                    duplicate = true;
+                    break;
+                }
+            }
+        }
+        if (duplicate) {
+            numberOfDuplicates++;
+            return true;
+        }
+
+        // An order that passes is surely new. New orders are wrongly deemed as
+        // duplicates with probability p, so each passing new order stands for
+        // p / (1 - p) wrongly dropped ones. Replayed orders do not contribute.
+        if (!exact) {
+            double falsePositiveRate = falsePositiveRate();
+            expectedFalsePositives += falsePositiveRate / (1 - falsePositiveRate);
+        }
+
+        // remember the order unless it is older than retention
+        if (epoch > currentEpoch - SLICES - 1) {
+            int index = (int) Math.floorMod(epoch, (long) (SLICES + 1));
+            if (exact) {
+                exactSlices[index].add(order.orderId);
+            } else {
+                bloomSlices[index].add(order.orderId);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Move the current epoch forward and clear the slices that have expired.
+     */
+    private void advance(long epoch) {
+        if (currentEpoch == Long.MIN_VALUE) {
+            currentEpoch = epoch;
+            return;
+        }
+        long from = Math.max(currentEpoch + 1, epoch - SLICES);
+        for (long e = from; e <= epoch; e++) {
+            int index = (int) Math.floorMod(e, (long) (SLICES + 1));
+            if (exact) {
+                exactSlices[index].clear();
+            } else {
+                bloomSlices[index].clear();
+            }
+        }
+        currentEpoch = Math.max(currentEpoch, epoch);
+    }
+
+    /**
+     * Estimate the current probability that a new order is deemed as a
+     * duplicate. It is always 0 in exact mode.
+     */
+    final double falsePositiveRate() {
+        if (exact) {
+            return 0;
+        }
+        double trueNegativeRate = 1;
+        for (BloomFilter slice : bloomSlices) {
+            trueNegativeRate *= 1 - slice.falsePositiveRate();
+        }
+        return 1 - trueNegativeRate;
+    }
+
+    final DeduplicationStats getStats() {
+        return new DeduplicationStats(exact, numberOfChecks, numberOfDuplicates, falsePositiveRate(),
+                expectedFalsePositives);
+    }
+}
@@ -0,0 +1,62 @@
+package orderBrushing;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
+
+/**
+ * RankIndex keeps a ranking of ids (shopId or userId) by their number of
+ * suspicious transactions. The ranking is an ordered set indexed by a count
+ * map, so that a count update costs {@code O(log n)} and the top {@code k} ids
+ * are read in {@code O(k)} from the head of the set.
+ * <p>
+ * Ids are ordered by count in descending order, and ties are broken by id in
+ * ascending order.
+ * </p>
+ */
+final class RankIndex {
+
+    // map from id to number of suspicious transactions
+    private final HashMap<Long, Integer> counts = new HashMap<>();
+
+    // ids ordered by counts. An id must be removed before its count is changed.
+    private final TreeSet<Long> ranking = new TreeSet<>((a, b) -> {
+        int c = Integer.compare(counts.get(b), counts.get(a));
+        return c != 0 ? c : Long.compare(a, b);
+    });
+
+    /**
+     * Add {@code delta} suspicious transactions to {@code id}. The delta may be
+     * negative, and an id is no longer ranked when its count drops to 0.
+     */
+    final void add(long id, int delta) {
+        Integer count = counts.get(id);
+        if (count != null) {
+            ranking.remove(id);
+        }
+        int newCount = (count == null ? 0 : count) + delta;
+        if (newCount == 0) {
+            counts.remove(id);
+            return;
+        }
+        counts.put(id, newCount);
+        ranking.add(id);
+    }
+
+    /**
+     * Get the top {@code k} ids from the head of the ranking.
+     *
+     * @param k the number of ids to return.
+     * @return a {@code LinkedHashMap} from id to count, in ranking order.
+     */
+    final LinkedHashMap<Long, Integer> top(int k) {
+        LinkedHashMap<Long, Integer> top = new LinkedHashMap<>();
+        Iterator<Long> iterator = ranking.iterator();
+        for (int i = 0; i < k && iterator.hasNext(); i++) {
+            Long id = iterator.next();
+            top.put(id, counts.get(id));
+        }
+        return top;
+    }
+}
@@ -2,13 +2,14 @@ package orderBrushing;
 
 import java.util.Date;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 /**
  * Information of shops including shopId, recentOrders, and number of suspicious
  * Transactions related to each user.
  */
-final class Shop implements Cloneable {
+final class Shop {
 
     /*** fields of shop information ***/
 
@@ -29,28 +30,23 @@ final class Shop implements Cloneable {
     // number of orders last hour
     int numberOfOrdersLastHour = 0;
 
+
+    /*** fields of bucketed mode ***/
+
+    // aggregates of time buckets replacing recentOrders of a hot shop, null if
+    // the shop is processed exactly
+    BucketedWindow buckets = null;
+    // an exact copy of a bucketed shop used to measure divergence, null if not
+    // tracked
+    Shop shadow = null;
+    // a shadow shop does not update the indexes of ShopList
+    boolean isShadow = false;
+    // suspicious orders of the on-going order-brushing period of a bucketed shop,
+    // null if the buckets do not keep orders
+    ArrayList<Order> periodOrders = null;
+
     Shop(long id) {
         shopId = id;
         recentOrders = new ArrayDeque<>();
     }
-
-    /**
-     * The {@code clone()} method of Shop is not a simple shallow copy, but also
-     * invokes clone() of one critical field:
-     * {@code HashMap<Long, Integer> suspiciousUsers}. Since suspiciousUsers is a
-     * mapping with immutable keys and values, clone() gives a deep copy of
-     * suspiciousUsers. There is no need to clone recentOrders for our purpose, as
-     * it is read only in {@code ShopList.update()}.
-     */
-    @Override
-    @SuppressWarnings("unchecked")
-    public final Shop clone() {
-        try {
-            Shop shopCopy = (Shop) super.clone();
-            shopCopy.suspiciousUsers = (HashMap<Long, Integer>) suspiciousUsers.clone();
-            return shopCopy;
-        } catch (CloneNotSupportedException e) {
-            throw new AssertionError("Shop clone error");
-        }
-    }
 }
@@ -1,10 +1,13 @@
 package orderBrushing;
 
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 
 /**
  * The ShopList class consists of a list of shops and is the main processor for
@@ -18,10 +21,22 @@ import java.util.Queue;
  * <li>{@code int detect(Shop shop, Order order, boolean newOrderAdded)} is a
  * worker method used in update() that does a lazy evaluation of concentration
  * rate, and updates suspicious user list.</li>
- * <li>{@code Collection<Shop> getShopInfo()} makes a deep copy of shopList, and
- * pour the remaining suspicious users into the suspicious user list. It returns
- * a collection of cloned shops with latest information.</li>
+ * <li>{@code HashMap<Long, Integer> suspiciousCounts(Shop shop)} reads the
+ * suspicious users of a shop, including the remaining suspicious users of an
+ * on-going order-brushing period, without pouring them.</li>
+ * <li>{@code HashMap<Long, Integer> lookupUser(long userId)} reads the inverted
+ * user index of {@code SuspiciousIndex} to find the shops related to a user
+ * without copying the shopList.</li>
+ * <li>{@code LinkedHashMap<Long, Integer> topShops(int k)} and
+ * {@code LinkedHashMap<Long, Integer> topUsers(int k)} read rankings of shops
+ * and users by number of suspicious transactions, maintained in
+ * {@code SuspiciousIndex} as orders join order-brushing periods and as the
+ * periods are poured.</li>
  * </ul>
+ * When bucketed mode is enabled, a shop with at least {@code hotShopThreshold}
+ * orders in the last hour switches from the exact scan to a
+ * {@code BucketedWindow}, which trades precision for bounded work per order. Optionally an exact shadow of
+ * each bucketed shop is kept to report the divergence of the two.
  * </p>
  */
 final class ShopList {
@@ -34,6 +49,21 @@ final class ShopList {
     // map from shopId to Shop
     private final HashMap<Long, Shop> shopList;
 
+    // pending suspicious transactions, inverted user index, and rankings of
+    // shops and users
+    private final SuspiciousIndex suspiciousIndex = new SuspiciousIndex();
+
+    // optional store of closed order-brushing periods, null if disabled
+    private EvidenceStore evidenceStore = null;
+
+    // parameters of bucketed mode, hotShopThreshold = 0 if disabled
+    private int hotShopThreshold = 0;
+    private int bucketsPerWindow = 60;
+    private boolean trackDivergence = false;
+
+    // shops processed in bucketed mode
+    private final HashMap<Long, Shop> bucketedShops = new HashMap<>();
+
     /**
      * Construct a ShopList with default parameters: deem concentration greater than
      * {@code concentrationThreshold} in {@code window} milliseconds as suspicious
@@ -63,14 +93,36 @@ final class ShopList {
      */
     final void update(Order order) {
 
-        // calculate one hour before the latest transaction time
-        final Date windowLowerBound = new Date(order.eventTime.getTime() - window);
-
         // initialize if this is a new shop to the list
         if (!shopList.containsKey(order.shopId)) {
             shopList.put(order.shopId, new Shop(order.shopId));
         }
         Shop shop = shopList.get(order.shopId);
+
+        // hot shops are processed in bucketed mode
+        if (shop.buckets != null) {
+            updateBucketed(shop, order);
+            if (shop.shadow != null) {
+                updateExact(shop.shadow, order);
+            }
+            return;
+        }
+        updateExact(shop, order);
+
+        // switch to bucketed mode if the shop becomes hot, but not in the middle of
+        // order-brushing
+        if (hotShopThreshold > 0 && !shop.isPreviousBrushOrder && shop.numberOfOrdersLastHour >= hotShopThreshold) {
+            toBucketed(shop);
+        }
+    }
+
+    /**
+     * Update a shop with the exact scan of recentOrders.
+     */
+    private void updateExact(Shop shop, Order order) {
+
+        // calculate one hour before the latest transaction time
+        final Date windowLowerBound = new Date(order.eventTime.getTime() - window);
         if (shop.clock == null) {
             shop.recentOrders.add(order);
             shop.clock = windowLowerBound;
@@ -90,9 +142,13 @@ final class ShopList {
             shop.clock = new Date(shop.clock.getTime() + increment);
         }
 
-        // add new order and detect again
+        // add new order and detect again. The new order joins the on-going
+        // order-brushing period if any.
         shop.recentOrders.add(order);
         shop.numberOfOrdersLastHour++;
+        if (shop.isPreviousBrushOrder && !shop.isShadow) {
+            suspiciousIndex.addPending(shop.shopId, order.userId, 1);
+        }
         detect(shop, order, true);
     }
 
@@ -147,6 +203,13 @@ final class ShopList {
 
         // if the concentration >= concentrationThreshold, let isPreviousBrushOrder = true and return.
         if (concentration(shop) >= concentrationThreshold) {
+
+            // when order-brushing starts, all recent orders become suspicious
+            if (!shop.isPreviousBrushOrder && !shop.isShadow) {
+                for (Order r : shop.recentOrders) {
+                    suspiciousIndex.addPending(shop.shopId, r.userId, 1);
+                }
+            }
             shop.isPreviousBrushOrder = true;
             return numberOfOrdersLastHour;
         }
@@ -160,6 +223,9 @@ final class ShopList {
         // concentrationThreshold, an order-brushing period has just ended. Pour all
         // suspicious activities into {@code suspiciousTransactionCount} and clear
         // recentOrders.
+        int numberOfPouredOrders = 0;
+        HashMap<Long, Integer> pouredUsers = new HashMap<>();
+        ArrayList<Order> pouredOrders = evidenceStore == null || shop.isShadow ? null : new ArrayList<>();
         for (Order r : shop.recentOrders) {
 
             // skip the new order since it is occurs when concentration < 3
@@ -174,6 +240,17 @@ final class ShopList {
                 Integer count = shop.suspiciousUsers.get(r.userId);
                 shop.suspiciousUsers.put(r.userId, count + 1);
             }
+            pouredUsers.merge(r.userId, 1, Integer::sum);
+            numberOfPouredOrders++;
+            if (pouredOrders != null) {
+                pouredOrders.add(r);
+            }
+        }
+        if (!shop.isShadow) {
+            suspiciousIndex.pour(shop.shopId, pouredUsers, numberOfPouredOrders);
+        }
+        if (pouredOrders != null) {
+            evidenceStore.record(shop.shopId, pouredOrders);
         }
         shop.recentOrders.clear();
 
@@ -188,38 +265,257 @@ final class ShopList {
     }
 
     /**
-     * Make a deep copy of shopListCopy, pour all the remaining recent Orders if
-     * they are deemed suspicious. Thus it does not disrupt future {@code update()}
-     * processes. If the deep copy is not made, {@code getShopInfo()} would conduct
-     * an early pour, which disrupts future {@code update()} process.
-     *
-     * @return a {@code Collection} containing all shop information.
+     * Switch a shop to bucketed mode. The orders in the last hour are moved into
+     * buckets, and recentOrders is no longer used. If divergence is tracked, an
+     * exact shadow of the shop takes over recentOrders.
      */
-    final Collection<Shop> getShopInfo() {
+    private void toBucketed(Shop shop) {
+        // the window may have been changed after bucketed mode is enabled
+        // orders are kept only if evidence is recorded
+        BucketedWindow buckets = new BucketedWindow(window, (int) Math.min(bucketsPerWindow, window),
+                evidenceStore != null);
+        for (Order r : shop.recentOrders) {
+            if (r.eventTime.compareTo(shop.clock) < 0) {
+                continue;
+            }
+
+            long epoch = buckets.epochOf(r);
+            while (buckets.expireNext(epoch)) {
+                // these orders have been scanned exactly, no need to detect again
+            }
+            buckets.add(r);
+        }
+        if (trackDivergence) {
+            Shop shadow = new Shop(shop.shopId);
+            shadow.isShadow = true;
+            shadow.recentOrders.addAll(shop.recentOrders);
+            shadow.clock = shop.clock;
+            shadow.numberOfOrdersLastHour = shop.numberOfOrdersLastHour;
+            shadow.suspiciousUsers = new HashMap<>(shop.suspiciousUsers);
+            shop.shadow = shadow;
+        }
+        shop.recentOrders.clear();
+        shop.buckets = buckets;
+        bucketedShops.put(shop.shopId, shop);
+    }
 
-        // make a deep copy
-        HashMap<Long, Shop> shopListCopy = deepCopy().shopList;
+    /**
+     * Update a shop in bucketed mode. Expire buckets out of the window one by
+     * one, then add the new order, and detect after each change.
+     */
+    private void updateBucketed(Shop shop, Order order) {
+        BucketedWindow buckets = shop.buckets;
+        long epoch = buckets.epochOf(order);
+        while (buckets.expireNext(epoch)) {
+            detectBucketed(shop, null);
+        }
+        buckets.add(order);
+        detectBucketed(shop, order);
+    }
 
-        // for each shop
-        for (Shop shop : shopListCopy.values()) {
+    /**
+     * The bucketed version of {@code detect()}. When order-brushing starts, all
+     * orders in the window are suspicious; while it is going on, each new order is
+     * suspicious; when it ends, the suspicious transactions are poured, recorded
+     * as evidence if the buckets keep orders, and removed from the buckets.
+     *
+     * @param order the new order, or null if buckets have just expired.
+     */
+    private void detectBucketed(Shop shop, Order order) {
+        BucketedWindow buckets = shop.buckets;
 
-            // if not order brushing, skip.
+        // if the concentration >= concentrationThreshold, order-brushing is going on.
+        if (buckets.concentration() >= concentrationThreshold) {
             if (!shop.isPreviousBrushOrder) {
-                continue;
+                for (Map.Entry<Long, Integer> entry : buckets.windowUsers().entrySet()) {
+                    suspiciousIndex.addPending(shop.shopId, entry.getKey(), entry.getValue());
+                }
+                shop.periodOrders = buckets.ordersInWindow();
+                shop.isPreviousBrushOrder = true;
+            } else if (order != null) {
+                suspiciousIndex.addPending(shop.shopId, order.userId, 1);
+                if (shop.periodOrders != null) {
+                    shop.periodOrders.add(order);
+                }
             }
+            return;
+        }
+        if (!shop.isPreviousBrushOrder) {
+            return;
+        }
+
+        // an order-brushing period has just ended, the new order is not suspicious.
+        // All pending transactions are poured. Unlike detect(), the new order that
+        // ends the period has not been added as pending.
+        for (Map.Entry<Long, Integer> entry : suspiciousIndex.pourPending(shop.shopId).entrySet()) {
+            shop.suspiciousUsers.merge(entry.getKey(), entry.getValue(), Integer::sum);
+        }
+        if (shop.periodOrders != null && evidenceStore != null) {
+            evidenceStore.record(shop.shopId, shop.periodOrders);
+        }
+        shop.periodOrders = null;
+
+        // as recentOrders is cleared in detect(), remove the poured orders from the
+        // buckets and add the new order back
+        buckets.clear();
+        if (order != null) {
+            buckets.add(order);
+        }
+        shop.isPreviousBrushOrder = false;
+    }
+
+    /**
+     * Get the shops of the shopList. The shops are not copied, use
+     * {@code suspiciousCounts()} to read their suspicious users.
+     *
+     * @return an array of shops.
+     */
+    final Shop[] getShops() {
+        return shopList.values().toArray(new Shop[0]);
+    }
+
+    /**
+     * Get the number of suspicious transactions of each user of a shop, including
+     * the remaining suspicious transactions if order-brushing is on-going, without
+     * pouring them, so future {@code update()} is not disrupted. The suspicious
+     * users are only copied when order-brushing is on-going, so the returned map
+     * must be treated as read only.
+     *
+     * @return a {@code HashMap} from userId to number of suspicious transactions.
+     */
+    final HashMap<Long, Integer> suspiciousCounts(Shop shop) {
+        if (!shop.isPreviousBrushOrder) {
+            return shop.suspiciousUsers;
+        }
+        HashMap<Long, Integer> counts = new HashMap<>(shop.suspiciousUsers);
+        for (Map.Entry<Long, Integer> entry : pendingCounts(shop).entrySet()) {
+            counts.merge(entry.getKey(), entry.getValue(), Integer::sum);
+        }
+        return counts;
+    }
+
+    /**
+     * Get the number of suspicious transactions of each user in the on-going
+     * order-brushing period of a shop, which have not been poured yet.
+     *
+     * @return a {@code Map} from userId to number of suspicious transactions.
+     */
+    private Map<Long, Integer> pendingCounts(Shop shop) {
+        if (!shop.isShadow) {
+            return suspiciousIndex.pending(shop.shopId);
+        }
 
-            // if order brushing, pour the remaining suspicious transactions.
-            // DO NOT clear shop.recentOrders, it is a shallow copy from shopList!
+        // shadow shops are not indexed
+        HashMap<Long, Integer> counts = new HashMap<>();
+        if (shop.isPreviousBrushOrder) {
             for (Order r : shop.recentOrders) {
-                if (!shop.suspiciousUsers.containsKey(r.userId)) {
-                    shop.suspiciousUsers.put(r.userId, 1);
-                } else {
-                    Integer count = shop.suspiciousUsers.get(r.userId);
-                    shop.suspiciousUsers.put(r.userId, count + 1);
+                counts.merge(r.userId, 1, Integer::sum);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Look up the shops for which user {@code userId} has conducted suspicious
+     * transactions. The result is the same as what {@code suspiciousCounts()}
+     * reports for the user, including on-going order-brushing periods, and is read from
+     * the inverted user index without scanning shops.
+     *
+     * @return a {@code HashMap} from shopId to number of suspicious transactions.
+     */
+    final HashMap<Long, Integer> lookupUser(long userId) {
+        return suspiciousIndex.shopsOf(userId);
+    }
+
+    /**
+     * Batch version of {@code lookupUser()}.
+     *
+     * @return a {@code HashMap} from userId to (a {@code HashMap} from shopId to
+     *         number of suspicious transactions). Every requested userId is a key.
+     */
+    final HashMap<Long, HashMap<Long, Integer>> lookupUsers(Set<Long> userIds) {
+        HashMap<Long, HashMap<Long, Integer>> users = new HashMap<>();
+        for (Long userId : userIds) {
+            users.put(userId, suspiciousIndex.shopsOf(userId));
+        }
+        return users;
+    }
+
+    /**
+     * Get the {@code k} shops with the most suspicious transactions, including
+     * those of on-going order-brushing periods, in {@code O(k)}.
+     *
+     * @return a {@code LinkedHashMap} from shopId to number of suspicious
+     *         transactions, in descending order of the number.
+     */
+    final LinkedHashMap<Long, Integer> topShops(int k) {
+        return suspiciousIndex.topShops(k);
+    }
+
+    /**
+     * Get the {@code k} users with the most suspicious transactions across all
+     * shops, including those of on-going order-brushing periods, in {@code O(k)}.
+     *
+     * @return a {@code LinkedHashMap} from userId to number of suspicious
+     *         transactions, in descending order of the number.
+     */
+    final LinkedHashMap<Long, Integer> topUsers(int k) {
+        return suspiciousIndex.topUsers(k);
+    }
+
+    /**
+     * Compare bucketed shops with their exact shadows. Only shops switched to
+     * bucketed mode while divergence is tracked are compared.
+     *
+     * @return a report of the divergence.
+     */
+    final DivergenceReport divergence() {
+        int numberOfComparedShops = 0;
+        int numberOfDivergentShops = 0;
+        long exactOrders = 0;
+        long bucketedOrders = 0;
+        long absoluteDifference = 0;
+        for (Shop shop : bucketedShops.values()) {
+            if (shop.shadow == null) {
+                continue;
+            }
+            numberOfComparedShops++;
+            HashMap<Long, Integer> bucketed = suspiciousCounts(shop);
+            HashMap<Long, Integer> exact = suspiciousCounts(shop.shadow);
+            for (Map.Entry<Long, Integer> entry : bucketed.entrySet()) {
+                bucketedOrders += entry.getValue();
+                absoluteDifference += Math.abs(entry.getValue() - exact.getOrDefault(entry.getKey(), 0));
+            }
+            for (Map.Entry<Long, Integer> entry : exact.entrySet()) {
+                exactOrders += entry.getValue();
+                if (!bucketed.containsKey(entry.getKey())) {
+                    absoluteDifference += entry.getValue();
                 }
             }
+            if (!mostSuspiciousUsers(bucketed).equals(mostSuspiciousUsers(exact))) {
+                numberOfDivergentShops++;
+            }
         }
-        return shopListCopy.values();
+        return new DivergenceReport(bucketedShops.size(), numberOfComparedShops, numberOfDivergentShops, exactOrders,
+                bucketedOrders, absoluteDifference);
+    }
+
+    /**
+     * Find the users with the maximum number of suspicious transactions.
+     */
+    private static HashSet<Long> mostSuspiciousUsers(HashMap<Long, Integer> counts) {
+        HashSet<Long> users = new HashSet<>();
+        int max = 0;
+        for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > max) {
+                max = entry.getValue();
+                users.clear();
+            }
+            if (entry.getValue() == max) {
+                users.add(entry.getKey());
+            }
+        }
+        return users;
     }
 
     /**
@@ -244,14 +540,26 @@ final class ShopList {
     }
 
     /**
-     * make a deep copy of ShopList, used for query
+     * Set parameters of bucketed mode. Shops already in bucketed mode are not
+     * affected.
+     *
+     * @param hotShopThreshold the number of orders in the last hour for a shop to
+     *                         switch to bucketed mode, 0 to disable bucketed mode.
+     * @param bucketsPerWindow the number of buckets per window.
+     * @param trackDivergence  whether to keep an exact shadow of bucketed shops.
      */
-    public final ShopList deepCopy() {
-        ShopList shopListCopy = new ShopList(window, concentrationThreshold, increment);
-        for (Shop shop : shopList.values()) {
-            shopListCopy.shopList.put(shop.shopId, shop.clone());
-        }
-        return shopListCopy;
+    void setBucketedMode(int hotShopThreshold, int bucketsPerWindow, boolean trackDivergence) {
+        this.hotShopThreshold = hotShopThreshold;
+        this.bucketsPerWindow = bucketsPerWindow;
+        this.trackDivergence = trackDivergence;
+    }
+
+    EvidenceStore getEvidenceStore() {
+        return evidenceStore;
+    }
+
+    void setEvidenceStore(EvidenceStore evidenceStore) {
+        this.evidenceStore = evidenceStore;
     }
 
     long getWindow() {
@@ -0,0 +1,145 @@
+package orderBrushing;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SuspiciousIndex keeps the suspicious transactions of all shops up to date as
+ * orders are processed, so that queries do not need to scan the shops.
+ * <p>
+ * Suspicious transactions are either poured (the order-brushing period has
+ * ended) or pending (the order-brushing period is on-going). A transaction is
+ * added as pending when it joins an on-going order-brushing period, and moves
+ * from pending to poured when the period ends. The rankings of shops and users
+ * and the inverted index from userId to shops count both, so they agree with
+ * {@code ShopList.suspiciousCounts()}.
+ * </p>
+ */
+final class SuspiciousIndex {
+
+    // map from shopId to (map from userId to number of pending suspicious transactions)
+    private final HashMap<Long, HashMap<Long, Integer>> pendingUsers = new HashMap<>();
+
+    // map from shopId to number of pending suspicious transactions
+    private final HashMap<Long, Integer> pendingOrders = new HashMap<>();
+
+    // map from userId to (map from shopId to number of poured and pending
+    // suspicious transactions)
+    private final HashMap<Long, HashMap<Long, Integer>> userShops = new HashMap<>();
+
+    // rankings of shops and users by number of poured and pending suspicious transactions
+    private final RankIndex shopRank = new RankIndex();
+    private final RankIndex userRank = new RankIndex();
+
+    /**
+     * Add {@code count} pending suspicious transactions of user {@code userId} in
+     * shop {@code shopId}.
+     */
+    final void addPending(long shopId, long userId, int count) {
+        pendingUsers.computeIfAbsent(shopId, k -> new HashMap<>()).merge(userId, count, Integer::sum);
+        pendingOrders.merge(shopId, count, Integer::sum);
+        shopRank.add(shopId, count);
+        addUser(userId, shopId, count);
+    }
+
+    /**
+     * End the on-going order-brushing period of shop {@code shopId}. The pending
+     * suspicious transactions of the shop are replaced by {@code poured}, which
+     * may differ from them, e.g. the order that ends the period is pending but not
+     * poured.
+     *
+     * @param poured               a mapping from userId to the number of poured
+     *                             suspicious transactions.
+     * @param numberOfPouredOrders the total number of poured suspicious
+     *                             transactions.
+     */
+    final void pour(long shopId, HashMap<Long, Integer> poured, int numberOfPouredOrders) {
+        Map<Long, Integer> pending = pendingUsers.remove(shopId);
+        Integer numberOfPendingOrders = pendingOrders.remove(shopId);
+        if (pending == null) {
+            pending = Collections.emptyMap();
+        }
+        for (Map.Entry<Long, Integer> entry : poured.entrySet()) {
+            int delta = entry.getValue() - pending.getOrDefault(entry.getKey(), 0);
+            if (delta != 0) {
+                addUser(entry.getKey(), shopId, delta);
+            }
+        }
+        for (Map.Entry<Long, Integer> entry : pending.entrySet()) {
+            if (!poured.containsKey(entry.getKey())) {
+                addUser(entry.getKey(), shopId, -entry.getValue());
+            }
+        }
+        int delta = numberOfPouredOrders - (numberOfPendingOrders == null ? 0 : numberOfPendingOrders);
+        if (delta != 0) {
+            shopRank.add(shopId, delta);
+        }
+    }
+
+    /**
+     * End the on-going order-brushing period of shop {@code shopId}, with all its
+     * pending suspicious transactions poured. The rankings and the inverted index
+     * do not change, since they already count the pending transactions.
+     *
+     * @return a {@code HashMap} from userId to number of poured suspicious
+     *         transactions, owned by the caller.
+     */
+    final HashMap<Long, Integer> pourPending(long shopId) {
+        HashMap<Long, Integer> pending = pendingUsers.remove(shopId);
+        pendingOrders.remove(shopId);
+        return pending == null ? new HashMap<>() : pending;
+    }
+
+    /**
+     * Add {@code delta} suspicious transactions of user {@code userId} in shop
+     * {@code shopId} to the inverted index and the ranking of users.
+     */
+    private void addUser(long userId, long shopId, int delta) {
+        HashMap<Long, Integer> shops = userShops.computeIfAbsent(userId, k -> new HashMap<>());
+        int count = shops.getOrDefault(shopId, 0) + delta;
+        if (count == 0) {
+            shops.remove(shopId);
+            if (shops.isEmpty()) {
+                userShops.remove(userId);
+            }
+        } else {
+            shops.put(shopId, count);
+        }
+        userRank.add(userId, delta);
+    }
+
+    /**
+     * Get a copy of the shops related to user {@code userId}.
+     *
+     * @return a {@code HashMap} from shopId to number of suspicious transactions,
+     *         empty if the user is not suspicious in any shop.
+     */
+    final HashMap<Long, Integer> shopsOf(long userId) {
+        HashMap<Long, Integer> shops = userShops.get(userId);
+        if (shops == null) {
+            return new HashMap<>();
+        }
+        return new HashMap<>(shops);
+    }
+
+    /**
+     * Get the pending suspicious transactions of shop {@code shopId}.
+     *
+     * @return an unmodifiable {@code Map} from userId to number of pending
+     *         suspicious transactions, empty if order-brushing is not going on.
+     */
+    final Map<Long, Integer> pending(long shopId) {
+        HashMap<Long, Integer> pending = pendingUsers.get(shopId);
+        return pending == null ? Collections.emptyMap() : Collections.unmodifiableMap(pending);
+    }
+
+    final LinkedHashMap<Long, Integer> topShops(int k) {
+        return shopRank.top(k);
+    }
+
+    final LinkedHashMap<Long, Integer> topUsers(int k) {
+        return userRank.top(k);
+    }
+}
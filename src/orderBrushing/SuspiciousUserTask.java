@@ -0,0 +1,107 @@
+package orderBrushing;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * SuspiciousUserTask assembles the suspicious users of a range of shops in
+ * parallel with fork-join. The range is split in halves until it is small
+ * enough, and each shop is then processed in a single pass over its suspicious
+ * users. The result of the {@code i}-th shop is written to {@code results[i]}
+ * as an ascending array of userId.
+ * <p>
+ * If {@code threshold} is 0, the users with the maximum number of suspicious
+ * transactions are selected. Otherwise, the users with at least
+ * {@code threshold} suspicious transactions are selected.
+ * </p>
+ */
+final class SuspiciousUserTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    // number of shops below which the range is processed sequentially
+    private static final int SEQUENTIAL_THRESHOLD = 1024;
+
+    private final ShopList shopList;
+    private final Shop[] shops;
+    private final Long[][] results;
+    private final int threshold;
+    private final int from;
+    private final int to;
+
+    SuspiciousUserTask(ShopList shopList, Shop[] shops, Long[][] results, int threshold, int from, int to) {
+        this.shopList = shopList;
+        this.shops = shops;
+        this.results = results;
+        this.threshold = threshold;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= SEQUENTIAL_THRESHOLD) {
+
+            // a temporary container used repeatedly.
+            long[] users = new long[16];
+            for (int i = from; i < to; i++) {
+                HashMap<Long, Integer> counts = shopList.suspiciousCounts(shops[i]);
+                if (users.length < counts.size()) {
+                    users = new long[counts.size()];
+                }
+                int numberOfUsers = threshold == 0 ? selectMax(counts, users) : selectAtLeast(counts, users);
+
+                // put usersId in ascending order
+                Arrays.sort(users, 0, numberOfUsers);
+                Long[] result = new Long[numberOfUsers];
+                for (int j = 0; j < numberOfUsers; j++) {
+                    result[j] = users[j];
+                }
+                results[i] = result;
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        invokeAll(new SuspiciousUserTask(shopList, shops, results, threshold, from, middle),
+                new SuspiciousUserTask(shopList, shops, results, threshold, middle, to));
+    }
+
+    /**
+     * Find the users with the maximum count in one pass. The users found so far
+     * are discarded whenever a larger count is met.
+     *
+     * @return the number of users written into {@code users}.
+     */
+    private static int selectMax(HashMap<Long, Integer> counts, long[] users) {
+        int max = 0;
+        int numberOfUsers = 0;
+        for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+            int count = entry.getValue();
+            if (count > max) {
+                max = count;
+                numberOfUsers = 0;
+            }
+            if (count == max) {
+                users[numberOfUsers++] = entry.getKey();
+            }
+        }
+        return numberOfUsers;
+    }
+
+    /**
+     * Find the users with count greater or equal to threshold.
+     *
+     * @return the number of users written into {@code users}.
+     */
+    private int selectAtLeast(HashMap<Long, Integer> counts, long[] users) {
+        int numberOfUsers = 0;
+        for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() >= threshold) {
+                users[numberOfUsers++] = entry.getKey();
+            }
+        }
+        return numberOfUsers;
+    }
+}